@@ -20,12 +20,18 @@ import static edu.cwru.sepia.util.DistanceMetrics.chebyshevDistance;
 public class RLAgent extends Agent {
 
     /**
-     * Set in the constructor. Defines how many learning episodes your agent should run for.
+     * Set in the constructor. Defines the most learning episodes your agent should run for.
      * When starting an episode. If the count is greater than this value print a message
-     * and call sys.exit(0.0)
+     * and call sys.exit(0.0). With the adaptive schedule training may stop earlier.
      */
     public final int numEpisodes;
 
+    /**
+     * Set in the constructor. Whether to stretch the gap between test blocks and stop early once the
+     * test rewards converge, instead of testing after every 10 learning episodes until numEpisodes.
+     */
+    public final boolean adaptiveSchedule;
+
     /**
      * List of your footmen and your enemies footmen
      */
@@ -37,8 +43,24 @@ public class RLAgent extends Agent {
     private int testingEpisodes = 0;
     private double averageReward;
     private List<Double> averageRewards;
+    private List<Integer> testEpisodeNumbers;
     private int episodeNumber;
 
+    /**
+     * Online statistics of the test episode rewards. The Welford accumulators describe the current test
+     * block; the exponential moving average and its running variance track the block means across the run.
+     */
+    private int blockCount = 0;
+    private double blockMean = 0.0;
+    private double blockM2 = 0.0;
+    private double movingAverage;
+    private double movingVariance = 0.0;
+    private double stallReference;
+    private int testBlocks = 0;
+    private int lastTestEpisode = 0;
+    private int stalledEpisodes = 0;
+    private int learningInterval = MIN_LEARNING_INTERVAL;
+
     /**
      * Convenience variable specifying enemy agent number. Use this whenever referring
      * to the enemy agent. We will make sure it is set to the proper number when testing your code.
@@ -70,6 +92,26 @@ public class RLAgent extends Agent {
     public final double learningRate = .0001;
     public final double epsilon = .02;
 
+    /**
+     * Adaptive evaluation schedule and early stopping. The number of learning episodes between test blocks
+     * starts at the minimum and doubles (up to the maximum) whenever a block mean lies within the 95% band of
+     * the block means around the moving average; it falls back to the minimum as soon as one does not. Once
+     * the schedule has reached the maximum interval, training stops when the moving average has gained no
+     * more than its own 95% confidence interval over the given number of learning episodes.
+     */
+    public static final int MIN_LEARNING_INTERVAL = 10;
+    public static final int MAX_LEARNING_INTERVAL = 160;
+    public static final int CONVERGENCE_PATIENCE = 1600;
+    public final double averageSmoothing = 0.2;
+
+    /**
+     * Two-sided 95% critical values of the Student t distribution, indexed by degrees of freedom.
+     */
+    private static final double[] T_CRITICAL = {
+            Double.NaN, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
     /**
      * Construct a reinforcement learning agent.
      * @param playernum Player number of the agent
@@ -80,6 +122,8 @@ public class RLAgent extends Agent {
         rewards = new HashMap<>();
         averageRewards = new LinkedList<>();
         averageRewards.add(0.0);
+        testEpisodeNumbers = new LinkedList<>();
+        testEpisodeNumbers.add(0);
 
         if (args.length >= 1) {
             numEpisodes = Integer.parseInt(args[0]);
@@ -96,6 +140,13 @@ public class RLAgent extends Agent {
             System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
         }
 
+        if (args.length >= 3) {
+            adaptiveSchedule = Boolean.parseBoolean(args[2]);
+        } else {
+            adaptiveSchedule = true;
+            System.out.println("Warning! Adaptive schedule argument not specified. Defaulting to adaptive scheduling.");
+        }
+
         if (loadWeights) {
             weights = loadWeights();
         } else {
@@ -234,10 +285,8 @@ public class RLAgent extends Agent {
         calculateRewards(stateView, historyView);
         removeDeadFootmen(stateView, historyView);
 
-        if (episodeNumber > numEpisodes){
-            System.out.println("ALL DONE");
-            System.exit(0);
-        }
+        if (episodeNumber > numEpisodes)
+            stopTraining(String.format("episode limit of %d reached", numEpisodes));
         saveWeights(weights);
 
         if (myFootmen.size() > enemyFootmen.size()){
@@ -254,7 +303,7 @@ public class RLAgent extends Agent {
 
         if (frozen) return;
 
-        if (learningEpisodes < 10) {
+        if (learningEpisodes < learningInterval) {
             episodeNumber++;
             System.out.println(episodeNumber);
             learningEpisodes++;
@@ -271,22 +320,128 @@ public class RLAgent extends Agent {
 
         if (!frozen)return;
 
+        double totalReward = 0;
+        for (Double reward : rewards.values())
+            totalReward += reward;
+        double episodeReward = totalReward / rewards.size();
+
         if (testingEpisodes < 5) {
             testingEpisodes++;
-            double totalReward = 0;
-            for (Double reward : rewards.values())
-                totalReward += reward;
-            averageReward += (totalReward / rewards.size());
+            averageReward += episodeReward;
+            // the first entry of a block is the reward of the last learning episode, keep it out of the statistics
+            if (adaptiveSchedule && testingEpisodes > 1)
+                updateBlockStatistics(episodeReward);
         } else {
             frozen = false;
             testingEpisodes = 0;
             averageRewards.add(averageReward / 5);
-            printTestData(averageRewards);
+            testEpisodeNumbers.add(episodeNumber);
             saveToCsv(averageRewards);
             averageReward = 0;
+            if (adaptiveSchedule) {
+                updateBlockStatistics(episodeReward);  // the last test episode of the block just ended
+                printScheduledTestData(averageRewards);
+                scheduleNextTest();
+            } else {
+                printTestData(averageRewards);
+            }
+        }
+    }
+
+    /**
+     * Add a test episode reward to the statistics of the current test block using Welford's algorithm.
+     * @param reward Average reward per footman of the test episode
+     */
+    private void updateBlockStatistics(double reward) {
+        blockCount++;
+        double delta = reward - blockMean;
+        blockMean += delta / blockCount;
+        blockM2 += delta * (reward - blockMean);
+    }
+
+    /**
+     * Two-sided 95% critical value of the Student t distribution.
+     * @param degreesOfFreedom Degrees of freedom, at least 1
+     * @return The critical value
+     */
+    private static double tCritical(int degreesOfFreedom) {
+        return degreesOfFreedom < T_CRITICAL.length ? T_CRITICAL[degreesOfFreedom] : 1.96;
+    }
+
+    /**
+     * Fold the finished test block into the moving average, pick the number of learning episodes before the
+     * next test block, and stop training if the moving average has stopped improving.
+     */
+    private void scheduleNextTest() {
+
+        double blockHalfWidth = blockCount > 1
+                ? tCritical(blockCount - 1) * Math.sqrt(blockM2 / (blockCount - 1) / blockCount) : 0;
+
+        testBlocks++;
+        int learnedEpisodes = episodeNumber - lastTestEpisode;
+        lastTestEpisode = episodeNumber;
+
+        // the moving average weighs roughly (2 - a) / a recent blocks, which bounds its degrees of freedom
+        int effectiveBlocks = (int) Math.round((2 - averageSmoothing) / averageSmoothing);
+        double t = tCritical(Math.max(1, Math.min(testBlocks, effectiveBlocks) - 1));
+
+        if (testBlocks == 1) {
+            movingAverage = blockMean;
+            stallReference = blockMean;
+        } else {
+            double difference = blockMean - movingAverage;
+            boolean settled = Math.abs(difference) <= t * Math.sqrt(movingVariance);
+            learningInterval = settled ? Math.min(2 * learningInterval, MAX_LEARNING_INTERVAL) : MIN_LEARNING_INTERVAL;
+
+            double increment = averageSmoothing * difference;
+            movingAverage += increment;
+            movingVariance = (1 - averageSmoothing) * (movingVariance + difference * increment);
+        }
+
+        // variance of the moving average itself is the block variance scaled by a / (2 - a)
+        double averageHalfWidth = t * Math.sqrt(movingVariance * averageSmoothing / (2 - averageSmoothing));
+        double gain = movingAverage - stallReference;
+
+        if (learningInterval < MAX_LEARNING_INTERVAL || gain > averageHalfWidth) {
+            // still warming up, or still improving: measure any stall from here
+            stallReference = movingAverage;
+            stalledEpisodes = 0;
+        } else {
+            stalledEpisodes += learnedEpisodes;
+        }
+
+        System.out.println(String.format(
+                "Test block %d: mean %.2f +/- %.2f, moving average %.2f +/- %.2f, next test in %d episodes",
+                testBlocks, blockMean, blockHalfWidth, movingAverage, averageHalfWidth, learningInterval));
+
+        blockCount = 0;
+        blockMean = 0.0;
+        blockM2 = 0.0;
+
+        if (stalledEpisodes >= CONVERGENCE_PATIENCE) {
+            saveWeights(weights);
+            stopTraining(String.format(
+                    "converged after %d episodes: moving average %.2f gained %.2f, within its +/- %.2f interval, over %d learning episodes",
+                    episodeNumber, movingAverage, gain, averageHalfWidth, stalledEpisodes));
         }
     }
 
+    /**
+     * Record why training stopped and exit.
+     * @param reason Reason for stopping
+     */
+    private void stopTraining(String reason) {
+        System.out.println("ALL DONE: " + reason);
+        File path = new File("outputs/stop_reason.txt");
+        path.getAbsoluteFile().getParentFile().mkdirs();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
+            bw.write(reason + "\n");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
     /**
      * Calculate the updated weights for this agent.
      * @param oldWeights Weights prior to update
@@ -572,6 +727,30 @@ public class RLAgent extends Agent {
         System.out.println("");
     }
 
+    /**
+     * Prints the learning curve like printTestData, but labelled with the number of learning episodes
+     * actually played before each test block, since the adaptive schedule does not test every 10 episodes.
+     *
+     * @param averageRewards List of cumulative average rewards from test episodes.
+     */
+    private void printScheduledTestData(List<Double> averageRewards) {
+        System.out.println("");
+        System.out.println("Games Played      Average Cumulative Reward");
+        System.out.println("-------------     -------------------------");
+        for (int i = 0; i < averageRewards.size(); i++) {
+            String gamesPlayed = Integer.toString(testEpisodeNumbers.get(i));
+            String averageReward = String.format("%.2f", averageRewards.get(i));
+
+            int numSpaces = "-------------     ".length() - gamesPlayed.length();
+            StringBuffer spaceBuffer = new StringBuffer(numSpaces);
+            for (int j = 0; j < numSpaces; j++) {
+                spaceBuffer.append(" ");
+            }
+            System.out.println(gamesPlayed + spaceBuffer.toString() + averageReward);
+        }
+        System.out.println("");
+    }
+
     /**
      * Save average cumulative rewards acquired during this run to a CSV file.
      * @param averageRewards Average cumulative rewards
@@ -581,7 +760,7 @@ public class RLAgent extends Agent {
         path.getAbsoluteFile().getParentFile().mkdirs();
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
             for (int i = 0; i < averageRewards.size(); i++) {
-                String gamesPlayed = Integer.toString(10 * i);
+                String gamesPlayed = Integer.toString(testEpisodeNumbers.get(i));
                 String averageReward = String.format("%.2f", averageRewards.get(i));
                 bw.write(String.format("%s,%s\n", gamesPlayed, averageReward));
             }